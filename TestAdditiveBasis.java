@@ -1,5 +1,7 @@
 import java.util.*;
 import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
 
 /**
  * @author Finn Lidbetter
@@ -28,7 +30,17 @@ public class TestAdditiveBasis {
   static int HEURISTIC_GCD_MAX_WORD_LEN = 10;
   static String absolutePathToWalnut = System.getProperty("user.home")+"/Drive/Documents/Waterloo/walnut-for-linz";
   static String proverClassPath = absolutePathToWalnut+"/bin";
-  static String[] startWalnutCommand = new String[]{"java","-Xms64g","-cp", proverClassPath, "Main.prover"};
+  static long memoryBudgetMegabytes = MemoryBudget.getPhysicalMemoryMegabytes()*3/4;
+  static int evalTimeoutSeconds = 60*60;
+  static MemoryBudget memoryBudget;
+  static boolean benchmark = false;
+  static int nThreads = 1;
+  static int speculativeWidth = 1;
+  static String timingHistoryFile = null;
+  static CostModel costModel;
+  static String benchmarkDirectory = ".";
+  static boolean serve = false;
+  static int servicePort = 0;
 
   public static void main(String[] args) throws IOException {
     BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
@@ -56,102 +68,405 @@ public class TestAdditiveBasis {
           }
         } else if (option.equals("-q")) {
           quiet = true;
+        } else if (option.equals("-t")) {
+          if (i<args.length-1) {
+            try {
+              nThreads = Integer.parseInt(args[i+1]);
+              i++;
+            } catch(NumberFormatException e) {
+              // Parsing failed. Ignore
+            }
+          }
+        } else if (option.equals("-s")) {
+          speculativeWidth = Runtime.getRuntime().availableProcessors();
+          if (i<args.length-1) {
+            try {
+              speculativeWidth = Integer.parseInt(args[i+1]);
+              i++;
+            } catch(NumberFormatException e) {
+              // Parsing failed. Ignore
+            }
+          }
+        } else if (option.equals("-m")) {
+          if (i<args.length-1) {
+            try {
+              memoryBudgetMegabytes = Long.parseLong(args[i+1])*1024;
+              i++;
+            } catch(NumberFormatException e) {
+              // Parsing failed. Ignore
+            }
+          }
+        } else if (option.equals("-T")) {
+          if (i<args.length-1) {
+            try {
+              evalTimeoutSeconds = Integer.parseInt(args[i+1]);
+              i++;
+            } catch(NumberFormatException e) {
+              // Parsing failed. Ignore
+            }
+          }
+        } else if (option.equals("-H")) {
+          if (i<args.length-1) {
+            timingHistoryFile = args[i+1];
+            i++;
+          }
+        } else if (option.equals("-S")) {
+          serve = true;
+          if (i<args.length-1) {
+            try {
+              servicePort = Integer.parseInt(args[i+1]);
+              i++;
+            } catch(NumberFormatException e) {
+              // Parsing failed. Ignore
+            }
+          }
+        } else if (option.equals("-b")) {
+          benchmark = true;
+          if (i<args.length-1 && !args[i+1].startsWith("-")) {
+            benchmarkDirectory = args[i+1];
+            i++;
+          }
         }
       }
     }
-    
+    costModel = new CostModel(timingHistoryFile);
+    memoryBudget = new MemoryBudget(memoryBudgetMegabytes, nThreads*speculativeWidth);
+    if (benchmark) {
+      boolean allMatch = runBenchmark(benchmarkDirectory);
+      System.exit(allMatch ? 0 : 1);
+    }
+    if (serve) {
+      QueryService service = new QueryService();
+      if (servicePort>0) {
+        service.serveSocket(servicePort);
+      } else {
+        service.serveStream(br, new PrintWriter(new OutputStreamWriter(System.out), true));
+        service.shutdown();
+      }
+      return;
+    }
+    analyseAutomata(br, System.out, new PhaseTimer());
+  }
+
+  static void analyseAutomata(BufferedReader br, PrintStream out, PhaseTimer timer) throws IOException {
+    // Parallel sweeps schedule over the whole list so that expensive automata
+    // can be started first.
+    int batchSize = (nThreads>1) ? Integer.MAX_VALUE : AutomatonBatch.LANES;
     int polyGrowthGCD1 = 0;
     int polyGrowthBadGCD = 0;
     int expGrowthGCD1 = 0;
     int expGrowthBadGCD = 0;
     int numAdditiveBasis = 0;
+    int undeterminedGCD = 0;
+    int failedAnalyses = 0;
     TreeMap<Integer,Integer> asymptoticBasisOrderToCount = new TreeMap<>();
     TreeMap<Integer,Integer> basisOrderToCount = new TreeMap<>();
+    ArrayList<String> batchLines = new ArrayList<>();
+    ArrayList<Automaton> batch = new ArrayList<>();
     String line = br.readLine();
-    while (line!=null) {
-      String[] autInfo = line.split(" ");
-      if (autInfo[1].charAt(0)!='0') {
+    while (line!=null || batch.size()>0) {
+      if (line!=null && batch.size()<batchSize) {
+        String[] autInfo = line.split(" ");
+        if (autInfo[1].charAt(0)=='0') {
+          batchLines.add(line);
+          batch.add(new Automaton(Integer.parseInt(autInfo[0]), autInfo[1], autInfo[2]));
+        }
         line = br.readLine();
         continue;
       }
-      Automaton aut = new Automaton(Integer.parseInt(autInfo[0]), autInfo[1], autInfo[2]);
-
-      int autGCD = aut.computeGCD();
-      int heuristicGCD = aut.heuristicGCD(HEURISTIC_GCD_MAX_WORD_LEN);
-      
-      if (autGCD!=heuristicGCD) {
-        System.err.println("For "+line+", Walnut approach says GCD is : "+autGCD);
-        System.err.println("Warning! Heuristic approach says GCD is "+heuristicGCD);
-      }
-      
-      boolean polyGrowth = aut.isPolynomial();
-      if (polyGrowth!=aut.heuristicIsPolynomial(HEURISTIC_POLYNOMIAL_MAX_WORD_LEN)) {
-        if (polyGrowth) {
-          System.err.println(line+" has polynomial growth");
-        } else {
-          System.err.println(line+" has exponential growth");
+      long start = System.nanoTime();
+      AutomatonBatch simulator = new AutomatonBatch(batch);
+      int[] heuristicGCDs = simulator.heuristicGCD(HEURISTIC_GCD_MAX_WORD_LEN);
+      long[] acceptsOne = simulator.isAccepted("1");
+      timer.add(PhaseTimer.HEURISTICS, start);
+      timer.automata += batch.size();
+      AnalysisResult[] results = analyseBatch(batch, batchLines, heuristicGCDs, acceptsOne);
+      for (AnalysisResult result:results) {
+        if (result.error!=null) {
+          System.err.println("For "+result.line+", the analysis failed: "+result.error);
+          failedAnalyses++;
+          continue;
         }
-        System.err.println("Warning! Heuristic approach says otherwise");
-      }
-      if ((autGCD==1 && !polyGrowth)) {
-        expGrowthGCD1++;
-        if (!quiet) {
-          System.out.println(line);
+        timer.add(result);
+        String autLine = result.line;
+        int autGCD = result.gcd;
+        boolean polyGrowth = result.polynomial;
+        boolean formsBasis = result.formsBasis;
+        
+        if (autGCD==Automaton.UNKNOWN) {
+          System.err.println("For "+autLine+", Walnut could not determine the GCD");
+          undeterminedGCD++;
+          continue;
         }
-        if (aut.isAccepted("1")) {
-          numAdditiveBasis++;
+        if (autGCD!=result.heuristicGCD) {
+          System.err.println("For "+autLine+", Walnut approach says GCD is : "+autGCD);
+          System.err.println("Warning! Heuristic approach says GCD is "+result.heuristicGCD);
         }
-
-        if (calculateOrder) {
-          int asymptoticAdditiveBasisOrder = aut.getAdditiveBasisOrder(true);
-          if (asymptoticBasisOrderToCount.containsKey(asymptoticAdditiveBasisOrder)) {
-            asymptoticBasisOrderToCount.put(asymptoticAdditiveBasisOrder, asymptoticBasisOrderToCount.get(asymptoticAdditiveBasisOrder)+1);
+        
+        if (polyGrowth!=result.heuristicPolynomial) {
+          if (polyGrowth) {
+            System.err.println(autLine+" has polynomial growth");
           } else {
-            asymptoticBasisOrderToCount.put(asymptoticAdditiveBasisOrder,1);
+            System.err.println(autLine+" has exponential growth");
           }
-          String orderString = (asymptoticAdditiveBasisOrder<=maxOrder) ? ""+asymptoticAdditiveBasisOrder : "greater than "+maxOrder;
+          System.err.println("Warning! Heuristic approach says otherwise");
+        }
+        if ((autGCD==1 && !polyGrowth)) {
+          expGrowthGCD1++;
           if (!quiet) {
-            if (aut.isAccepted("1")) {
-              System.out.print(" forms an additive basis and");
-            } 
-            System.out.println(" has asymptotic additive basis order "+orderString);
+            out.println(autLine);
           }
-          if (calculateNonAsymptotic && aut.isAccepted("1")) {
-            int additiveBasisOrder = aut.getAdditiveBasisOrder(false);
-            if (basisOrderToCount.containsKey(additiveBasisOrder)) {
-              basisOrderToCount.put(additiveBasisOrder, basisOrderToCount.get(additiveBasisOrder)+1);
+          if (formsBasis) {
+            numAdditiveBasis++;
+          }
+
+          if (calculateOrder) {
+            int asymptoticAdditiveBasisOrder = result.asymptoticOrder;
+            if (asymptoticBasisOrderToCount.containsKey(asymptoticAdditiveBasisOrder)) {
+              asymptoticBasisOrderToCount.put(asymptoticAdditiveBasisOrder, asymptoticBasisOrderToCount.get(asymptoticAdditiveBasisOrder)+1);
             } else {
-              basisOrderToCount.put(additiveBasisOrder, 1);
+              asymptoticBasisOrderToCount.put(asymptoticAdditiveBasisOrder,1);
             }
-            orderString = (additiveBasisOrder<=maxOrder) ? ""+additiveBasisOrder : "greater than "+maxOrder;
+            String orderString = getOrderString(asymptoticAdditiveBasisOrder);
             if (!quiet) {
-              System.out.println(" has additive basis order "+orderString);
+              if (formsBasis) {
+                out.print(" forms an additive basis and");
+              } 
+              out.println(" has asymptotic additive basis order "+orderString);
             }
+            if (calculateNonAsymptotic && formsBasis) {
+              int additiveBasisOrder = result.order;
+              if (basisOrderToCount.containsKey(additiveBasisOrder)) {
+                basisOrderToCount.put(additiveBasisOrder, basisOrderToCount.get(additiveBasisOrder)+1);
+              } else {
+                basisOrderToCount.put(additiveBasisOrder, 1);
+              }
+              orderString = getOrderString(additiveBasisOrder);
+              if (!quiet) {
+                out.println(" has additive basis order "+orderString);
+              }
+            }
+          }
+        } else if (autGCD==1 && polyGrowth) {
+          polyGrowthGCD1++;
+        } else if (autGCD!=1 && !polyGrowth) {
+          expGrowthBadGCD++;
+        } else {
+          polyGrowthBadGCD++;
+        }
+      }
+      batchLines.clear();
+      batch.clear();
+    }
+    if (nThreads>1) {
+      costModel.save();
+    }
+    out.println("Polynomial growth and GCD!=1: "+polyGrowthBadGCD);
+    out.println("Polynomial growth and GCD==1: "+polyGrowthGCD1);
+    out.println("Exponential growth and GCD!=1: "+expGrowthBadGCD);
+    out.println("Exponential growth and GCD==1: "+expGrowthGCD1);
+    out.println("Form additive basis: "+numAdditiveBasis);
+    if (undeterminedGCD>0) {
+      out.println("GCD not determined: "+undeterminedGCD);
+    }
+    if (failedAnalyses>0) {
+      out.println("Analysis failed: "+failedAnalyses);
+    }
+    printOrderCounts(out, asymptoticBasisOrderToCount, "asymptotic additive basis order");
+    printOrderCounts(out, basisOrderToCount, "additive basis order");
+  }
+
+  static AnalysisResult analyse(Automaton aut, String line, int heuristicGCD, boolean formsBasis) {
+    long analysisStart = System.nanoTime();
+    AnalysisResult result = new AnalysisResult(line, heuristicGCD, formsBasis);
+    AnalysisSession session = new AnalysisSession(aut);
+    try {
+      long start = System.nanoTime();
+      result.gcd = aut.computeGCD(session);
+      result.addPhase(PhaseTimer.GCD, start);
+      start = System.nanoTime();
+      result.polynomial = aut.isPolynomial(session.component, session.coReachable);
+      result.addPhase(PhaseTimer.GROWTH, start);
+      start = System.nanoTime();
+      result.heuristicPolynomial = aut.heuristicIsPolynomial(HEURISTIC_POLYNOMIAL_MAX_WORD_LEN);
+      result.addPhase(PhaseTimer.HEURISTICS, start);
+      if (calculateOrder && result.gcd==1 && !result.polynomial) {
+        start = System.nanoTime();
+        result.asymptoticOrder = aut.getAdditiveBasisOrder(true, session, 1);
+        result.addPhase(PhaseTimer.ASYMPTOTIC_ORDER, start);
+        if (calculateNonAsymptotic && formsBasis) {
+          start = System.nanoTime();
+          // The order is at least the asymptotic order, so fewer summands
+          // than the asymptotic order need not be tried.
+          if (result.asymptoticOrder==Integer.MAX_VALUE) {
+            result.order = Integer.MAX_VALUE;
+          } else {
+            result.order = aut.getAdditiveBasisOrder(false, session, Math.max(result.asymptoticOrder, 1));
           }
+          result.addPhase(PhaseTimer.ORDER, start);
         }
-      } else if (autGCD==1 && polyGrowth) {
-        polyGrowthGCD1++;
-      } else if (autGCD!=1 && !polyGrowth) {
-        expGrowthBadGCD++;
+      }
+    } finally {
+      session.close();
+    }
+    result.elapsedNanos = System.nanoTime()-analysisStart;
+    return result;
+  }
+
+  /**
+   * Analyses a batch of automata, returning the results in the order of the
+   * batch. With more than one thread the automata are dispatched in order of
+   * decreasing predicted cost so that the slowest automata do not end up
+   * running alone at the end of the sweep.
+   */
+  static AnalysisResult[] analyseBatch(List<Automaton> batch, List<String> lines, int[] heuristicGCDs, long[] acceptsOne) {
+    AnalysisResult[] results = new AnalysisResult[batch.size()];
+    if (nThreads<=1) {
+      for (int i=0; i<batch.size(); i++) {
+        results[i] = analyse(batch.get(i), lines.get(i), heuristicGCDs[i], AutomatonBatch.isSet(acceptsOne, i));
+      }
+      return results;
+    }
+    double[] predictedMillis = new double[batch.size()];
+    Integer[] dispatchOrder = new Integer[batch.size()];
+    for (int i=0; i<batch.size(); i++) {
+      predictedMillis[i] = costModel.estimate(batch.get(i), heuristicGCDs[i], AutomatonBatch.isSet(acceptsOne, i));
+      dispatchOrder[i] = i;
+    }
+    Arrays.sort(dispatchOrder, (i, j) -> Double.compare(predictedMillis[j], predictedMillis[i]));
+    ExecutorService workers = Executors.newFixedThreadPool(nThreads);
+    ArrayList<Future<AnalysisResult>> futures = new ArrayList<>(Collections.nCopies(batch.size(), null));
+    for (int i:dispatchOrder) {
+      Automaton aut = batch.get(i);
+      String line = lines.get(i);
+      int heuristicGCD = heuristicGCDs[i];
+      boolean formsBasis = AutomatonBatch.isSet(acceptsOne, i);
+      futures.set(i, workers.submit(() -> analyse(aut, line, heuristicGCD, formsBasis)));
+    }
+    for (int i=0; i<batch.size(); i++) {
+      try {
+        results[i] = futures.get(i).get();
+        results[i].predictedMillis = predictedMillis[i];
+        costModel.record(batch.get(i), results[i]);
+      } catch (InterruptedException | ExecutionException e) {
+        // The automaton is still reported, as failed, so that the summary
+        // accounts for every automaton read.
+        e.printStackTrace();
+        Throwable cause = (e.getCause()==null) ? e : e.getCause();
+        results[i] = new AnalysisResult(lines.get(i), heuristicGCDs[i], AutomatonBatch.isSet(acceptsOne, i));
+        results[i].error = (cause.getMessage()==null) ? cause.toString() : cause.getMessage();
+      }
+    }
+    workers.shutdown();
+    costModel.report(results);
+    return results;
+  }
+
+  /**
+   * Replays the shipped lists through the full pipeline with the options
+   * that produced the shipped result files, reports the throughput and the
+   * time spent in each phase, and compares the output line by line with the
+   * result files. Returns true if every run reproduced its result file.
+   */
+  static boolean runBenchmark(String directory) throws IOException {
+    // {list file, expected output file, options used to produce it}
+    String[][] runs = new String[][]{
+      {"list2.txt", "additiveBasisOrders-list2.txt", "-O"},
+      {"list3.txt", "additiveBasisOrders-list3.txt", "-O"},
+      {"list4.txt", "additiveBasisOrders-list4.txt", "-o 6"},
+      {"list4.txt", "additiveBasisStats-list4.txt", ""}
+    };
+    boolean allMatch = true;
+    for (String[] run:runs) {
+      File listFile = new File(directory, run[0]);
+      File expectedFile = new File(directory, run[1]);
+      // A run that cannot be made counts as a failure, so that the benchmark
+      // never passes without comparing anything.
+      if (!listFile.exists() || !expectedFile.exists()) {
+        System.out.println(run[0]+" "+run[2]+" -> "+run[1]);
+        System.out.println("  missing "+(listFile.exists() ? expectedFile : listFile));
+        allMatch = false;
+        continue;
+      }
+      calculateOrder = run[2].startsWith("-");
+      calculateNonAsymptotic = run[2].startsWith("-O");
+      maxOrder = (run[2].length()>3) ? Integer.parseInt(run[2].substring(3)) : Integer.MAX_VALUE;
+      quiet = false;
+
+      ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(outputBytes);
+      PhaseTimer timer = new PhaseTimer();
+      BufferedReader listReader = new BufferedReader(new FileReader(listFile));
+      long start = System.nanoTime();
+      analyseAutomata(listReader, out, timer);
+      long elapsed = System.nanoTime()-start;
+      listReader.close();
+      out.flush();
+
+      System.out.println(run[0]+" "+run[2]+" -> "+run[1]);
+      timer.report(System.out, elapsed);
+      BufferedReader actualReader = new BufferedReader(new StringReader(outputBytes.toString()));
+      BufferedReader expectedReader = new BufferedReader(new FileReader(expectedFile));
+      int mismatches = diffLines(expectedReader, actualReader);
+      expectedReader.close();
+      if (mismatches==0) {
+        System.out.println("  output matches "+run[1]);
       } else {
-        polyGrowthBadGCD++;
+        System.out.println("  "+mismatches+" lines differ from "+run[1]);
+        allMatch = false;
+      }
+    }
+    return allMatch;
+  }
+
+  static int diffLines(BufferedReader expected, BufferedReader actual) throws IOException {
+    int mismatches = 0;
+    int lineNumber = 1;
+    String expectedLine = expected.readLine();
+    String actualLine = actual.readLine();
+    while (expectedLine!=null || actualLine!=null) {
+      if (expectedLine==null || !expectedLine.equals(actualLine)) {
+        if (mismatches<10) {
+          System.out.println("  line "+lineNumber+": expected \""+expectedLine+"\" but was \""+actualLine+"\"");
+        }
+        mismatches++;
+      }
+      expectedLine = expected.readLine();
+      actualLine = actual.readLine();
+      lineNumber++;
+    }
+    return mismatches;
+  }
+
+  static void printOrderCounts(PrintStream out, TreeMap<Integer,Integer> orderToCount, String description) {
+    for (int order:orderToCount.keySet()) {
+      if (order!=Automaton.UNKNOWN) {
+        out.println(orderToCount.get(order)+" automata with "+description+" "+getOrderString(order));
       }
-      line = br.readLine();
     }
-    System.out.println("Polynomial growth and GCD!=1: "+polyGrowthBadGCD);
-    System.out.println("Polynomial growth and GCD==1: "+polyGrowthGCD1);
-    System.out.println("Exponential growth and GCD!=1: "+expGrowthBadGCD);
-    System.out.println("Exponential growth and GCD==1: "+expGrowthGCD1);
-    System.out.println("Form additive basis: "+numAdditiveBasis);
-    for (int asymptoticBasisOrder:asymptoticBasisOrderToCount.keySet()) {
-      String orderString = (asymptoticBasisOrder<=maxOrder) ? (""+asymptoticBasisOrder) : ("greater than "+maxOrder);
-      System.out.println(asymptoticBasisOrderToCount.get(asymptoticBasisOrder)+" automata with asymptotic additive basis order "+orderString);
+    // Automata whose order was not determined are counted apart from those
+    // whose order is greater than maxOrder.
+    if (orderToCount.containsKey(Automaton.UNKNOWN)) {
+      out.println(orderToCount.get(Automaton.UNKNOWN)+" automata with "+description+" "+getOrderString(Automaton.UNKNOWN));
     }
-    for (int basisOrder:basisOrderToCount.keySet()) {
-      String orderString = (basisOrder<=maxOrder) ? (""+basisOrder) : ("greater than "+maxOrder);
-      System.out.println(basisOrderToCount.get(basisOrder)+" automata with additive basis order "+orderString);
+  }
+
+  static String getOrderString(int order) {
+    if (order==Automaton.UNKNOWN) {
+      return "not determined";
     }
-    
+    return (order<=maxOrder) ? ""+order : "greater than "+maxOrder;
+  }
+
+  static String[] getStartWalnutCommand(long heapMegabytes) {
+    ArrayList<String> command = new ArrayList<>();
+    command.add("java");
+    command.add("-Xms"+heapMegabytes+"m");
+    command.add("-Xmx"+heapMegabytes+"m");
+    command.add("-XX:+ExitOnOutOfMemoryError");
+    command.addAll(Arrays.asList(ProverArchive.getLaunchOptions(heapMegabytes)));
+    command.add("Main.prover");
+    return command.toArray(new String[0]);
   }
 
   static String executeCommand(String[] command) {
@@ -174,7 +489,13 @@ public class TestAdditiveBasis {
   
 }
 class Automaton {
+  // Returned for a GCD or order that Walnut could not determine within the
+  // memory budget and eval timeout.
+  static final int UNKNOWN = -1;
   String canonicalString;
+  // Name of the automaton in the Walnut library. Each automaton gets its own
+  // file so that several provers can run side by side.
+  String walnutName;
   int initialState = 0;
   int nStates;
   int alphabetSize;
@@ -184,6 +505,7 @@ class Automaton {
   public Automaton(int nStates, String transitionString, String acceptString) {
     this.nStates = nStates;
     canonicalString = nStates+"_"+transitionString+"_"+acceptString;
+    walnutName = "LL_"+canonicalString;
     alphabetSize = transitionString.length()/nStates;
     transition = new int[nStates][alphabetSize];
     accept = new boolean[nStates];
@@ -234,22 +556,37 @@ class Automaton {
     return accept[currState];
   }
 
-  private int gcd(int a, int b) {
+  static int gcd(int a, int b) {
     return (b>0) ? gcd(b, a%b) : a;
   }
 
   
   public int getAdditiveBasisOrder(boolean asymptotic) {
-    File walnutAutFile = createWalnutAutomatonFile();
-    Process p;
+    AnalysisSession session = new AnalysisSession(this);
     try {
-      p = Runtime.getRuntime().exec(TestAdditiveBasis.startWalnutCommand);
-      BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
-      BufferedReader errorReader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-      boolean basisOrderFound = false;
-      int nSummands = 1;
-      while (!basisOrderFound) {
+      return getAdditiveBasisOrder(asymptotic, session, 1);
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Finds the (asymptotic) additive basis order using the prover of the
+   * given session, trying firstSummands summands first. Callers that know
+   * fewer summands cannot suffice may pass a larger firstSummands.
+   */
+  public int getAdditiveBasisOrder(boolean asymptotic, AnalysisSession session, int firstSummands) {
+    if (TestAdditiveBasis.speculativeWidth>1) {
+      // The budget allows for width provers per analysis, so the session's
+      // own prover must not hold on to one of them.
+      session.releaseProver();
+      return getAdditiveBasisOrderSpeculatively(asymptotic, firstSummands);
+    }
+    int order = 0;
+    try {
+      Prover prover = session.getProver();
+      int nSummands = firstSummands;
+      while (true) {
         String fileName = "ord"+nSummands+"_"+canonicalString;
         String walnutCommand = "";
         if (asymptotic) {
@@ -257,39 +594,125 @@ class Automaton {
         } else {
           walnutCommand = getWalnutAdditiveBasisOrderCommandString(nSummands,fileName);
         }
-        writer.write(walnutCommand);
-        writer.flush();
-        File resultFile = new File(TestAdditiveBasis.absolutePathToWalnut+"/Result/"+fileName+".txt");
-        while (!resultFile.exists()) {
-          Thread.sleep(5);
-        }
-        BufferedReader resultReader = new BufferedReader(new FileReader(resultFile));
-        String result = "";
-        while ((result=resultReader.readLine())==null) {
-          Thread.sleep(5);
+        String result = prover.eval(walnutCommand, fileName);
+        if (result==null) {
+          order = UNKNOWN;
+          break;
         }
         if (result.equals("true")) {
-          resultReader.close();
-          cleanup(p, reader, errorReader, writer);
-          deleteWalnutResultFiles(fileName);
-          while (!walnutAutFile.delete());
-          return nSummands;
+          order = nSummands;
+          break;
         }
         verbosityMessage(nSummands+" summands is not enough for "+canonicalString, 1);
-        resultReader.close();
-        deleteWalnutResultFiles(fileName);
         if (nSummands>=TestAdditiveBasis.maxOrder) {
-          cleanup(p,reader,errorReader,writer);
-          return Integer.MAX_VALUE;
+          order = Integer.MAX_VALUE;
+          break;
         }
         nSummands++;
       }
-      cleanup(p, reader, errorReader, writer);
     } catch (Exception e) {
       e.printStackTrace();
     }
-    while (!walnutAutFile.delete());
-    return 0;
+    return order;
+  }
+
+  /**
+   * Searches for the additive basis order by trying several numbers of
+   * summands at once, each on its own prover. Since a set that is a basis of
+   * order k is also a basis of order k+1, the order is the smallest k that
+   * succeeds once every smaller k has failed. Any larger k still running at
+   * that point is cancelled. The automaton must already be in the Walnut
+   * library.
+   */
+  private int getAdditiveBasisOrderSpeculatively(boolean asymptotic, int firstSummands) {
+    int width = TestAdditiveBasis.speculativeWidth;
+    ExecutorService provers = Executors.newFixedThreadPool(width);
+    ExecutorCompletionService<String> completions = new ExecutorCompletionService<>(provers);
+    HashMap<Integer,Future<String>> inFlight = new HashMap<>();
+    HashMap<Future<String>,Integer> summandsOfEval = new HashMap<>();
+    HashSet<Integer> failedSummands = new HashSet<>();
+    HashSet<Integer> undeterminedSummands = new HashSet<>();
+    int order = 0;
+    // The order is known to be at most upperBound once an eval succeeds.
+    int upperBound = Integer.MAX_VALUE;
+    int smallestUndecided = firstSummands;
+    int nextSummands = firstSummands;
+    try {
+      while (true) {
+        while (inFlight.size()<width && nextSummands<upperBound && nextSummands<=TestAdditiveBasis.maxOrder) {
+          int nSummands = nextSummands;
+          String fileName = "ord"+nSummands+"_"+canonicalString;
+          String walnutCommand = asymptotic
+            ? getWalnutAsymptoticAdditiveBasisOrderCommandString(nSummands, fileName)
+            : getWalnutAdditiveBasisOrderCommandString(nSummands, fileName);
+          Future<String> eval = completions.submit(() -> evaluateOnOwnProver(walnutCommand, fileName));
+          inFlight.put(nSummands, eval);
+          summandsOfEval.put(eval, nSummands);
+          nextSummands++;
+        }
+        if (undeterminedSummands.contains(smallestUndecided)) {
+          order = UNKNOWN;
+          break;
+        }
+        if (inFlight.isEmpty()) {
+          order = upperBound;
+          break;
+        }
+        Future<String> done = completions.take();
+        int nSummands = summandsOfEval.remove(done);
+        if (inFlight.remove(nSummands)==null) {
+          // Already cancelled.
+          continue;
+        }
+        String result = done.get();
+        if (result==null) {
+          undeterminedSummands.add(nSummands);
+        } else if (result.equals("true")) {
+          upperBound = Math.min(upperBound, nSummands);
+          for (int k:new ArrayList<>(inFlight.keySet())) {
+            if (k>upperBound) {
+              inFlight.remove(k).cancel(true);
+            }
+          }
+        } else {
+          verbosityMessage(nSummands+" summands is not enough for "+canonicalString, 1);
+          failedSummands.add(nSummands);
+        }
+        while (failedSummands.contains(smallestUndecided)) {
+          smallestUndecided++;
+        }
+        if (smallestUndecided==upperBound) {
+          order = upperBound;
+          break;
+        }
+      }
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    provers.shutdownNow();
+    try {
+      provers.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return order;
+  }
+
+  /**
+   * Evaluates a single command on a prover of its own and then gives the
+   * prover back. Returns null if the result could not be determined.
+   */
+  private String evaluateOnOwnProver(String walnutCommand, String fileName) throws IOException, InterruptedException {
+    Prover prover = Prover.acquire();
+    try {
+      return prover.eval(walnutCommand, fileName);
+    } catch (InterruptedException e) {
+      // Cancelled because a smaller number of summands already succeeded.
+      prover.kill();
+      throw e;
+    } finally {
+      Prover.release(prover);
+    }
   }
 
   private String getWalnutAdditiveBasisOrderCommandString(int nSummands, String fileName) {
@@ -299,7 +722,7 @@ class Automaton {
     StringBuilder sumBuilder = new StringBuilder();
     for (int i=0; i<nSummands; i++) {
       variableListBuilder.append("x"+i);
-      variableMembershipBuilder.append("((LL[x"+i+"]=@1)|(x"+i+"=0))");
+      variableMembershipBuilder.append("(("+walnutName+"[x"+i+"]=@1)|(x"+i+"=0))");
       sumBuilder.append("x"+i);
       if (i!=nSummands-1) {
         variableListBuilder.append(",");
@@ -317,7 +740,7 @@ class Automaton {
     StringBuilder sumBuilder = new StringBuilder();
     for (int i=0; i<nSummands; i++) {
       variableListBuilder.append("x"+i);
-      variableMembershipBuilder.append("((LL[x"+i+"]=@1)|(x"+i+"=0))");
+      variableMembershipBuilder.append("(("+walnutName+"[x"+i+"]=@1)|(x"+i+"=0))");
       sumBuilder.append("x"+i);
       if (i!=nSummands-1) {
         variableListBuilder.append(",");
@@ -330,103 +753,48 @@ class Automaton {
   }
 
   public int computeGCD() {
-    File autFile = createWalnutAutomatonFile();
-    ArrayList<Integer> candidateGCDs = getCandidateGCDs();
+    AnalysisSession session = new AnalysisSession(this);
+    try {
+      return computeGCD(session);
+    } finally {
+      session.close();
+    }
+  }
+
+  public int computeGCD(AnalysisSession session) {
+    ArrayList<Integer> candidateGCDs = getCandidateGCDs(session.smallestNonZeroAccepted);
     if (candidateGCDs==null)
       return 0;
-    int gcd = executeGCDCommands(candidateGCDs);
-    autFile.delete();
-    return gcd;
+    return executeGCDCommands(candidateGCDs, session);
   }
   
-  private int executeGCDCommands(ArrayList<Integer> candidates) {
-    Process p;
+  private int executeGCDCommands(ArrayList<Integer> candidates, AnalysisSession session) {
+    int gcd = 0;
     try {
-      p = Runtime.getRuntime().exec(TestAdditiveBasis.startWalnutCommand);
-      BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
-      BufferedReader errorReader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+      Prover prover = session.getProver();
       for (int candidate:candidates) {
         String fileIdentifier = canonicalString;
         String fileName = "gcd"+candidate+"_"+fileIdentifier;
-        String walnutCommand = "eval "+fileName+" \"A n (LL[n]=@1)=>(E t (n="+candidate+"*t))\":\n";
-        writer.write(walnutCommand);
-        writer.flush();
-        File resultFile = new File(TestAdditiveBasis.absolutePathToWalnut+"/Result/"+fileName+".txt");
-        while (!resultFile.exists()) {
-          Thread.sleep(5);
-        }
-        BufferedReader resultReader = new BufferedReader(new FileReader(resultFile));
-        String result = "";
-        while ((result=resultReader.readLine())==null) {
-          Thread.sleep(5);
+        String walnutCommand = "eval "+fileName+" \"A n ("+walnutName+"[n]=@1)=>(E t (n="+candidate+"*t))\":\n";
+        String result = prover.eval(walnutCommand, fileName);
+        if (result==null) {
+          gcd = UNKNOWN;
+          break;
         }
         if (result.equals("true")) {
-          resultReader.close();
-          cleanup(p, reader, errorReader, writer);
-          deleteWalnutResultFiles(fileName);
-          return candidate;
+          gcd = candidate;
+          break;
         }
-        resultReader.close();
-        deleteWalnutResultFiles(fileName);
       }
-      cleanup(p, reader, errorReader, writer);
     } catch (Exception e) {
       e.printStackTrace();
     }
-    return 0;
-  }
-  private void deleteWalnutResultFiles(String fileName) {
-    String walnutResultPath = TestAdditiveBasis.absolutePathToWalnut+"/Result/";
-    File resultFile = new File(walnutResultPath+fileName+".txt");
-    File logFile = new File(walnutResultPath+fileName+"_log.txt");
-    File gvFile = new File(walnutResultPath+fileName+".gv");
-    while (!resultFile.delete());
-    if (!TestAdditiveBasis.keepLogs) {
-      while (!logFile.delete());
-    }
-    while (!gvFile.delete());
-  }
-  
-
-  private void cleanup(Process p, BufferedReader pOutputReader, BufferedReader pErrorReader, BufferedWriter pInputWriter) {
-    try {
-      pInputWriter.write("exit:");
-      pInputWriter.flush();
-      if (pErrorReader.ready()) {
-        String error = pErrorReader.readLine();
-        System.out.println("");
-        while (error!=null) {
-          System.out.println(error);
-          error = pErrorReader.readLine();
-        }
-      }
-      if (pOutputReader.ready()) {
-        String output = pOutputReader.readLine();
-        while (output!=null) {
-          if (pOutputReader.ready())
-            output = pOutputReader.readLine();
-          else
-            output = null;
-        }
-      }
-      pOutputReader.close();
-      pErrorReader.close();
-      pInputWriter.close();
-    } catch(IOException e) {
-      System.err.println("Failed closing process i/o readers/writer");
-    }
-    try {
-      p.waitFor();
-    } catch(Exception e) {
-      e.printStackTrace();
-    }
+    return gcd;
   }
 
-
   public File createWalnutAutomatonFile() {
     String walnutString = toWalnutString();
-    String filePath = TestAdditiveBasis.absolutePathToWalnut+"/Word Automata Library/LL.txt";
+    String filePath = TestAdditiveBasis.absolutePathToWalnut+"/Word Automata Library/"+walnutName+".txt";
     File f = new File(filePath); 
     Writer writer = null;
     try {
@@ -445,7 +813,10 @@ class Automaton {
   }
 
   public ArrayList<Integer> getCandidateGCDs() {
-    String smallestNonZeroAcceptedWord = getSmallestNonZeroAccepted();
+    return getCandidateGCDs(getSmallestNonZeroAccepted());
+  }
+
+  public ArrayList<Integer> getCandidateGCDs(String smallestNonZeroAcceptedWord) {
     if (smallestNonZeroAcceptedWord==null || smallestNonZeroAcceptedWord.length()==0) {
       return null;
     }
@@ -520,14 +891,17 @@ class Automaton {
   }
 
   public boolean isPolynomial() {
+    return isPolynomial(getComponents(), getCoReachable());
+  }
+
+  public boolean isPolynomial(int[] component, boolean[] coReachable) {
     boolean[] commutative = new boolean[nStates];
     HashSet<Integer> completedComponents = new HashSet<Integer>();
-    int[] component = getComponents();
     Integer[] aSetOfState = new Integer[nStates];
     
     for (int i=0; i<nStates; i++) {
       verbosityMessage("State: "+i, 3);
-      if (completedComponents.contains(component[i]) || !isCoReachable(i))
+      if (completedComponents.contains(component[i]) || !coReachable[i])
         continue;
       String cyclingWord = findCyclingWord(i, component);
       if (cyclingWord==null) 
@@ -623,24 +997,32 @@ class Automaton {
   }
 
 
-  private boolean isCoReachable(int state) {
-    boolean[] vis = new boolean[nStates];
-    vis[state] = true;
-    return coReachableDfs(state, vis);
-  }
-
-  private boolean coReachableDfs(int curr, boolean[] vis) {
-    if (accept[curr])
-      return true;
-    boolean result = false;
-    for (int symbol=0; symbol<alphabetSize; symbol++) {
-      int nextState = transition[curr][symbol];
-      if (!vis[nextState]) {
-        vis[nextState] = true;
-        result = result || coReachableDfs(nextState, vis);
+  public boolean[] getCoReachable() {
+    // Searches backwards from the accepting states, so that every state is
+    // settled in one pass.
+    boolean[] coReachable = new boolean[nStates];
+    LinkedList<Integer> q = new LinkedList<Integer>();
+    for (int state=0; state<nStates; state++) {
+      if (accept[state]) {
+        coReachable[state] = true;
+        q.offer(state);
       }
     }
-    return result;
+    while (q.size()>0) {
+      int curr = q.poll();
+      for (int state=0; state<nStates; state++) {
+        if (coReachable[state])
+          continue;
+        for (int symbol=0; symbol<alphabetSize; symbol++) {
+          if (transition[state][symbol]==curr) {
+            coReachable[state] = true;
+            q.offer(state);
+            break;
+          }
+        }
+      }
+    }
+    return coReachable;
   }
 
   private boolean verifyAssignment(String primitiveRoot, ArrayList[] aStates, int[] component) {
@@ -789,6 +1171,1102 @@ class Automaton {
     return sb.toString();
   }
 }
+class AnalysisSession {
+  // One automaton loaded for analysis. Its Walnut library file is written
+  // once, its components, co-reachable states and smallest non-zero accepted
+  // word are computed once, and the Walnut queries of the analysis go to the
+  // same prover, which is only started if a query is needed. A speculative
+  // order search gives that prover back and uses provers of its own.
+  Automaton aut;
+  int[] component;
+  boolean[] coReachable;
+  String smallestNonZeroAccepted;
+  File walnutAutFile;
+  Prover prover;
+
+  public AnalysisSession(Automaton aut) {
+    this.aut = aut;
+    component = aut.getComponents();
+    coReachable = aut.getCoReachable();
+    smallestNonZeroAccepted = aut.getSmallestNonZeroAccepted();
+    walnutAutFile = aut.createWalnutAutomatonFile();
+  }
+
+  public Prover getProver() throws IOException, InterruptedException {
+    if (prover==null) {
+      prover = Prover.acquire();
+    }
+    return prover;
+  }
+
+  /**
+   * Gives the prover back, so that its heap can go to provers started for
+   * the rest of the analysis. A later query starts a new one.
+   */
+  public void releaseProver() {
+    if (prover!=null) {
+      Prover.release(prover);
+      prover = null;
+    }
+  }
+
+  public void close() {
+    releaseProver();
+    while (walnutAutFile.exists() && !walnutAutFile.delete());
+  }
+}
+class MemoryBudget {
+  // Heap, in megabytes, shared by all running provers. A prover reserves its
+  // heap before it starts and returns it when it exits, so the number of
+  // provers running at once is limited by the budget.
+  static final long MIN_HEAP_MEGABYTES = 1024;
+  long totalMegabytes;
+  long initialHeapMegabytes;
+  Semaphore available;
+
+  public MemoryBudget(long totalMegabytes, int concurrentProvers) {
+    this.totalMegabytes = Math.max(totalMegabytes, MIN_HEAP_MEGABYTES);
+    initialHeapMegabytes = Math.max(this.totalMegabytes/Math.max(concurrentProvers, 1), MIN_HEAP_MEGABYTES);
+    available = new Semaphore((int)this.totalMegabytes, true);
+  }
+
+  public void acquire(long megabytes) throws InterruptedException {
+    available.acquire((int)megabytes);
+  }
+
+  // Unlike Semaphore.tryAcquire(int), this does not take memory ahead of
+  // provers that are already waiting for it.
+  public boolean tryAcquire(long megabytes, long timeoutMillis) throws InterruptedException {
+    return available.tryAcquire((int)megabytes, timeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean hasWaiters() {
+    return available.hasQueuedThreads();
+  }
+
+  public void release(long megabytes) {
+    available.release((int)megabytes);
+  }
+
+  // getTotalMemorySize() replaces this method only from Java 14 on.
+  @SuppressWarnings("deprecation")
+  static long getPhysicalMemoryMegabytes() {
+    java.lang.management.OperatingSystemMXBean os = java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize()/(1024*1024);
+    }
+    return 64*1024;
+  }
+}
+class Prover {
+  // A Walnut prover process whose heap is reserved from the memory budget.
+  // An eval that makes the prover run out of memory or exceed the eval
+  // timeout is retried on a new prover with twice the heap, until the heap
+  // reaches the whole budget. When pooling is on, provers are kept running
+  // between computations and reused, so that a long-running service does not
+  // pay for a JVM start on every query.
+  static boolean pooling = false;
+  static ArrayDeque<Prover> idleProvers = new ArrayDeque<>();
+  static final String ERROR_LOG_NAME = "prover_errors.txt";
+  // ProcessBuilder.Redirect.DISCARD needs Java 9, so output that nothing
+  // reads is sent to the null device directly.
+  static final ProcessBuilder.Redirect DISCARD = ProcessBuilder.Redirect.to(
+      new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null"));
+  long heapMegabytes;
+  Process process;
+  BufferedWriter writer;
+
+  public static Prover acquire() throws IOException, InterruptedException {
+    if (pooling) {
+      synchronized (idleProvers) {
+        Prover prover = idleProvers.poll();
+        if (prover!=null)
+          return prover;
+      }
+    }
+    return new Prover();
+  }
+
+  public static void release(Prover prover) {
+    // A prover is not kept idle while someone is waiting for its memory.
+    if (pooling && prover.process!=null && prover.process.isAlive()
+        && !TestAdditiveBasis.memoryBudget.hasWaiters()) {
+      synchronized (idleProvers) {
+        idleProvers.push(prover);
+      }
+    } else {
+      prover.close();
+    }
+  }
+
+  public static void closeIdleProvers() {
+    ArrayList<Prover> provers;
+    synchronized (idleProvers) {
+      provers = new ArrayList<>(idleProvers);
+      idleProvers.clear();
+    }
+    for (Prover prover:provers) {
+      prover.close();
+    }
+  }
+
+  public Prover() throws IOException, InterruptedException {
+    this(TestAdditiveBasis.memoryBudget.initialHeapMegabytes);
+  }
+
+  public Prover(long heapMegabytes) throws IOException, InterruptedException {
+    this.heapMegabytes = Math.min(heapMegabytes, TestAdditiveBasis.memoryBudget.totalMegabytes);
+    start();
+  }
+
+  private void start() throws IOException, InterruptedException {
+    // The command may first have to build the class data archive, which
+    // needs some of the budget itself.
+    String[] command = TestAdditiveBasis.getStartWalnutCommand(heapMegabytes);
+    // Idle provers must not hold on to memory that a working one needs.
+    // Provers may be put back in the pool while this one waits, so the
+    // pool is emptied again whenever the wait times out.
+    if (!TestAdditiveBasis.memoryBudget.tryAcquire(heapMegabytes, 0)) {
+      do {
+        closeIdleProvers();
+      } while (!TestAdditiveBasis.memoryBudget.tryAcquire(heapMegabytes, 100));
+    }
+    try {
+      ProcessBuilder builder = new ProcessBuilder(command);
+      // Nothing reads the prover's output, so it must not fill up a pipe.
+      // Errors are kept in a log that all the provers append to.
+      builder.redirectOutput(DISCARD);
+      builder.redirectError(ProcessBuilder.Redirect.appendTo(
+          new File(TestAdditiveBasis.absolutePathToWalnut+"/"+ERROR_LOG_NAME)));
+      process = builder.start();
+    } catch (IOException e) {
+      TestAdditiveBasis.memoryBudget.release(heapMegabytes);
+      throw e;
+    }
+    writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+  }
+
+  /**
+   * Evaluates a Walnut command that writes its result to the given file
+   * name. Returns "true" or "false", or null if the eval still failed with
+   * the largest heap the budget allows.
+   */
+  public String eval(String walnutCommand, String fileName) throws IOException, InterruptedException {
+    while (true) {
+      if (process==null) {
+        start();
+      }
+      String result = null;
+      try {
+        writer.write(walnutCommand);
+        writer.flush();
+        result = awaitResult(fileName);
+      } catch (IOException e) {
+        // The prover died before it could take the command.
+      } catch (InterruptedException e) {
+        kill();
+        deleteResultFiles(fileName, false);
+        throw e;
+      }
+      if (result!=null) {
+        deleteResultFiles(fileName, true);
+        return result;
+      }
+      String reason = process.isAlive() ? "timed out" : "exited";
+      kill();
+      deleteResultFiles(fileName, false);
+      if (heapMegabytes>=TestAdditiveBasis.memoryBudget.totalMegabytes) {
+        System.err.println("Walnut "+reason+" on "+fileName+" with a "+heapMegabytes+" MB heap; giving up");
+        return null;
+      }
+      long largerHeap = Math.min(2*heapMegabytes, TestAdditiveBasis.memoryBudget.totalMegabytes);
+      System.err.println("Walnut "+reason+" on "+fileName+" with a "+heapMegabytes+" MB heap; retrying with "+largerHeap+" MB");
+      heapMegabytes = largerHeap;
+    }
+  }
+
+  private String awaitResult(String fileName) throws IOException, InterruptedException {
+    File resultFile = new File(TestAdditiveBasis.absolutePathToWalnut+"/Result/"+fileName+".txt");
+    long timeoutMillis = TestAdditiveBasis.evalTimeoutSeconds*1000L;
+    long deadline = (timeoutMillis>0) ? System.currentTimeMillis()+timeoutMillis : Long.MAX_VALUE;
+    while (!resultFile.exists()) {
+      if (!process.isAlive() || System.currentTimeMillis()>deadline) {
+        return null;
+      }
+      Thread.sleep(5);
+    }
+    BufferedReader resultReader = new BufferedReader(new FileReader(resultFile));
+    String result = "";
+    try {
+      while ((result=resultReader.readLine())==null) {
+        if (!process.isAlive() || System.currentTimeMillis()>deadline) {
+          return null;
+        }
+        Thread.sleep(5);
+      }
+    } finally {
+      resultReader.close();
+    }
+    return result;
+  }
+
+  /**
+   * Deletes the files Walnut writes for an eval. Walnut may still be writing
+   * the log and graph files of a completed eval after its result, so those
+   * are waited for. A prover that was killed may never write some of them,
+   * so for an eval that did not complete only the files that exist are
+   * deleted.
+   */
+  static void deleteResultFiles(String fileName, boolean completed) {
+    String walnutResultPath = TestAdditiveBasis.absolutePathToWalnut+"/Result/";
+    File resultFile = new File(walnutResultPath+fileName+".txt");
+    File logFile = new File(walnutResultPath+fileName+"_log.txt");
+    File gvFile = new File(walnutResultPath+fileName+".gv");
+    if (completed) {
+      while (!resultFile.delete());
+      if (!TestAdditiveBasis.keepLogs) {
+        while (!logFile.delete());
+      }
+      while (!gvFile.delete());
+      return;
+    }
+    while (resultFile.exists() && !resultFile.delete());
+    if (!TestAdditiveBasis.keepLogs) {
+      while (logFile.exists() && !logFile.delete());
+    }
+    while (gvFile.exists() && !gvFile.delete());
+  }
+
+  public void kill() {
+    if (process==null)
+      return;
+    process.destroyForcibly();
+    try {
+      process.waitFor();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    closeStreams();
+  }
+
+  public void close() {
+    if (process==null)
+      return;
+    try {
+      writer.write("exit:");
+      writer.flush();
+    } catch(IOException e) {
+      System.err.println("Failed closing process i/o writer");
+    }
+    try {
+      process.waitFor();
+    } catch(InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+    }
+    closeStreams();
+  }
+
+  private void closeStreams() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      /*ignore*/
+    }
+    process = null;
+    TestAdditiveBasis.memoryBudget.release(heapMegabytes);
+  }
+}
+class AnalysisResult {
+  // The results of analysing one automaton, gathered by a worker and
+  // reported by the main thread in input order.
+  String line;
+  int gcd;
+  int heuristicGCD;
+  boolean polynomial;
+  boolean heuristicPolynomial;
+  boolean formsBasis;
+  int asymptoticOrder;
+  int order;
+  long[] phaseNanos = new long[PhaseTimer.PHASE_NAMES.length];
+  long elapsedNanos;
+  double predictedMillis;
+  // Set when the analysis failed with an exception, in which case nothing
+  // else about the automaton is known.
+  String error;
+
+  public AnalysisResult(String line, int heuristicGCD, boolean formsBasis) {
+    this.line = line;
+    this.heuristicGCD = heuristicGCD;
+    this.formsBasis = formsBasis;
+  }
+
+  public void addPhase(int phase, long startNanos) {
+    phaseNanos[phase] += System.nanoTime()-startNanos;
+  }
+}
+class CostModel {
+  // Predicts how long the analysis of an automaton will take, in
+  // milliseconds. Automata timed in an earlier run with the same order
+  // options use their recorded time. Otherwise the mean recorded time of
+  // automata with the same number of states, the same amount of order
+  // computation and the same order options is used, falling back to a rough
+  // count of the prover launches the analysis will need.
+  static final double PROVER_LAUNCH_MILLIS = 1000;
+  String historyFile;
+  HashMap<String,Double> recordedMillis = new HashMap<>();
+  HashMap<String,double[]> classTotals = new HashMap<>();
+  StringBuilder pendingLines = new StringBuilder();
+
+  public CostModel(String historyFile) {
+    this.historyFile = historyFile;
+    if (historyFile==null || !new File(historyFile).exists())
+      return;
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(historyFile));
+      String line = reader.readLine();
+      while (line!=null) {
+        // canonicalString costClass orderOptions millis
+        String[] fields = line.split(" ");
+        if (fields.length==4) {
+          double millis = Double.parseDouble(fields[3]);
+          recordedMillis.put(fields[0]+" "+fields[1]+" "+fields[2], millis);
+          addToClass(fields[1]+" "+fields[2], millis);
+        }
+        line = reader.readLine();
+      }
+      reader.close();
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("Failed reading timing history "+historyFile);
+    }
+  }
+
+  public double estimate(Automaton aut, int heuristicGCD, boolean formsBasis) {
+    String costClass = getCostClass(aut, heuristicGCD, formsBasis)+" "+getOrderOptions();
+    String key = aut.canonicalString+" "+costClass;
+    if (recordedMillis.containsKey(key))
+      return recordedMillis.get(key);
+    double[] totals = classTotals.get(costClass);
+    if (totals!=null)
+      return totals[0]/totals[1];
+    int orderSearches = getOrderSearches(aut, heuristicGCD, formsBasis);
+    // Each order search tries about as many summand counts as there are states.
+    return PROVER_LAUNCH_MILLIS*(1+orderSearches*aut.nStates);
+  }
+
+  public void record(Automaton aut, AnalysisResult result) {
+    double millis = result.elapsedNanos/1e6;
+    String costClass = getCostClass(aut, result.heuristicGCD, result.formsBasis)+" "+getOrderOptions();
+    recordedMillis.put(aut.canonicalString+" "+costClass, millis);
+    addToClass(costClass, millis);
+    if (historyFile!=null) {
+      pendingLines.append(aut.canonicalString+" "+costClass+" "+millis+"\n");
+    }
+  }
+
+  public void report(AnalysisResult[] results) {
+    double predicted = 0;
+    double actual = 0;
+    double absoluteError = 0;
+    int n = 0;
+    for (AnalysisResult result:results) {
+      if (result.error!=null)
+        continue;
+      double actualMillis = result.elapsedNanos/1e6;
+      Automaton.verbosityMessage(result.line+" predicted "+(long)result.predictedMillis+" ms, took "+(long)actualMillis+" ms", 1);
+      predicted += result.predictedMillis;
+      actual += actualMillis;
+      absoluteError += Math.abs(result.predictedMillis-actualMillis);
+      n++;
+    }
+    if (n>0) {
+      System.err.printf("Cost model: predicted %.1f s, actual %.1f s, mean absolute error %.1f ms over %d automata%n", predicted/1000, actual/1000, absoluteError/n, n);
+    }
+  }
+
+  public void save() {
+    if (historyFile==null || pendingLines.length()==0)
+      return;
+    try {
+      Writer writer = new BufferedWriter(new FileWriter(historyFile, true));
+      writer.write(pendingLines.toString());
+      writer.close();
+      pendingLines.setLength(0);
+    } catch (IOException e) {
+      System.err.println("Failed writing timing history "+historyFile);
+    }
+  }
+
+  private void addToClass(String costClass, double millis) {
+    double[] totals = classTotals.get(costClass);
+    if (totals==null) {
+      totals = new double[2];
+      classTotals.put(costClass, totals);
+    }
+    totals[0] += millis;
+    totals[1]++;
+  }
+
+  /**
+   * Describes the options that decide which orders are computed and how far
+   * they are searched, e.g. "O6" for -O 6, "o" for an unbounded -o and "-"
+   * when no order is computed.
+   */
+  private String getOrderOptions() {
+    if (!TestAdditiveBasis.calculateOrder)
+      return "-";
+    String options = TestAdditiveBasis.calculateNonAsymptotic ? "O" : "o";
+    if (TestAdditiveBasis.maxOrder!=Integer.MAX_VALUE)
+      options += TestAdditiveBasis.maxOrder;
+    return options;
+  }
+
+  private String getCostClass(Automaton aut, int heuristicGCD, boolean formsBasis) {
+    return aut.nStates+"_"+getOrderSearches(aut, heuristicGCD, formsBasis);
+  }
+
+  private int getOrderSearches(Automaton aut, int heuristicGCD, boolean formsBasis) {
+    // The growth test is cheap, and the heuristic GCD almost always agrees
+    // with Walnut, so together they predict whether the order is computed.
+    if (!TestAdditiveBasis.calculateOrder || heuristicGCD!=1 || aut.isPolynomial())
+      return 0;
+    return (TestAdditiveBasis.calculateNonAsymptotic && formsBasis) ? 2 : 1;
+  }
+}
+class ProverArchive {
+  // An AppCDS archive of the classes a prover loads while it evaluates a
+  // formula. Provers started from the archive skip most of their class
+  // loading, which is a large part of the cost of a short GCD query. Class
+  // data sharing only works for classes loaded from jar files, so the
+  // directories on the prover classpath are first packed into a jar. The jar
+  // and archive are rebuilt whenever the prover's classpath or JVM changes,
+  // and provers start without them if they cannot be built. A failed build
+  // is recorded in the stamp so that it is not retried on every start.
+  // An archive only works with the compressed oops setting it was dumped
+  // with, and heaps over 32 GB cannot use compressed oops, so provers with
+  // large heaps use a second archive dumped without them.
+  static final String JAR_NAME = "prover.jar";
+  static final String ARCHIVE_NAME = "prover.jsa";
+  static final String UNCOMPRESSED_OOPS_ARCHIVE_NAME = "prover_uncompressed_oops.jsa";
+  static final String WARMUP_NAME = "archive_warmup";
+  static final String FAILED_MARKER = "failed\n";
+  // Larger heaps are started with compressed oops turned off explicitly, so
+  // that the JVM's own choice near 32 GB does not matter.
+  static final long COMPRESSED_OOPS_MAX_HEAP_MEGABYTES = 31*1024;
+  static String stamp = null;
+  static Boolean jarBuilt = null;
+  static String classPath = null;
+  static HashMap<String,String> archivePaths = new HashMap<>();
+
+  /**
+   * Returns the JVM options and classpath a prover with the given heap
+   * should start with.
+   */
+  public static synchronized String[] getLaunchOptions(long heapMegabytes) {
+    boolean compressedOops = heapMegabytes<=COMPRESSED_OOPS_MAX_HEAP_MEGABYTES;
+    String archiveName = compressedOops ? ARCHIVE_NAME : UNCOMPRESSED_OOPS_ARCHIVE_NAME;
+    if (!archivePaths.containsKey(archiveName)) {
+      archivePaths.put(archiveName, prepare(archiveName, compressedOops));
+    }
+    String archivePath = archivePaths.get(archiveName);
+    if (archivePath==null) {
+      return new String[]{"-cp", TestAdditiveBasis.proverClassPath};
+    }
+    if (compressedOops) {
+      return new String[]{"-XX:SharedArchiveFile="+archivePath, "-cp", classPath};
+    }
+    return new String[]{"-XX:-UseCompressedOops", "-XX:SharedArchiveFile="+archivePath, "-cp", classPath};
+  }
+
+  /**
+   * Makes sure the named archive is up to date, building it if needed.
+   * Returns its path, or null if provers must start without it.
+   */
+  private static String prepare(String archiveName, boolean compressedOops) {
+    if (!prepareJar()) {
+      return null;
+    }
+    File archive = new File(TestAdditiveBasis.absolutePathToWalnut, archiveName);
+    File stampFile = new File(TestAdditiveBasis.absolutePathToWalnut, archiveName+".stamp");
+    String archiveStamp = readStamp(stampFile);
+    if (archive.exists() && stamp.equals(archiveStamp)) {
+      return archive.getPath();
+    }
+    if ((stamp+FAILED_MARKER).equals(archiveStamp)) {
+      Automaton.verbosityMessage("Class data archive "+archive.getPath()+" failed to build before; starting provers without it", 1);
+      return null;
+    }
+    Automaton.verbosityMessage("Building class data archive "+archive.getPath(), 1);
+    stampFile.delete();
+    archive.delete();
+    if (!buildArchive(archive, classPath, compressedOops)) {
+      System.err.println("Could not build class data archive "+archive.getPath()+"; starting provers without it");
+      archive.delete();
+      writeStamp(stampFile, stamp+FAILED_MARKER);
+      return null;
+    }
+    writeStamp(stampFile, stamp);
+    return archive.getPath();
+  }
+
+  /**
+   * Makes sure the jar is up to date, building it if needed. Rebuilding the
+   * jar makes every archive built from the old one unusable, so those are
+   * deleted.
+   */
+  private static boolean prepareJar() {
+    if (jarBuilt!=null) {
+      return jarBuilt;
+    }
+    stamp = getStamp();
+    File jar = new File(TestAdditiveBasis.absolutePathToWalnut, JAR_NAME);
+    File stampFile = new File(TestAdditiveBasis.absolutePathToWalnut, JAR_NAME+".stamp");
+    classPath = getJarClassPath(jar);
+    String jarStamp = readStamp(stampFile);
+    if (jar.exists() && stamp.equals(jarStamp)) {
+      jarBuilt = true;
+    } else if ((stamp+FAILED_MARKER).equals(jarStamp)) {
+      jarBuilt = false;
+    } else {
+      stampFile.delete();
+      for (String archiveName:new String[]{ARCHIVE_NAME, UNCOMPRESSED_OOPS_ARCHIVE_NAME}) {
+        new File(TestAdditiveBasis.absolutePathToWalnut, archiveName+".stamp").delete();
+        new File(TestAdditiveBasis.absolutePathToWalnut, archiveName).delete();
+      }
+      jarBuilt = buildJar(jar);
+      if (!jarBuilt) {
+        System.err.println("Could not build "+jar.getPath()+"; starting provers without a class data archive");
+      }
+      writeStamp(stampFile, jarBuilt ? stamp : stamp+FAILED_MARKER);
+    }
+    return jarBuilt;
+  }
+
+  private static void writeStamp(File stampFile, String contents) {
+    try {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stampFile), "utf-8"));
+      writer.write(contents);
+      writer.close();
+    } catch (IOException e) {
+      System.err.println("Failed writing "+stampFile.getPath());
+    }
+  }
+
+  /**
+   * The prover classpath with its directories replaced by the jar they are
+   * packed into.
+   */
+  private static String getJarClassPath(File jar) {
+    StringBuilder sb = new StringBuilder(jar.getPath());
+    for (String entry:TestAdditiveBasis.proverClassPath.split(File.pathSeparator)) {
+      if (!new File(entry).isDirectory()) {
+        sb.append(File.pathSeparator+entry);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean buildJar(File jar) {
+    try {
+      java.util.jar.JarOutputStream out = new java.util.jar.JarOutputStream(new BufferedOutputStream(new FileOutputStream(jar)));
+      for (String entry:TestAdditiveBasis.proverClassPath.split(File.pathSeparator)) {
+        File directory = new File(entry);
+        if (directory.isDirectory()) {
+          addToJar(out, directory, "");
+        }
+      }
+      out.close();
+      return true;
+    } catch (IOException e) {
+      jar.delete();
+      return false;
+    }
+  }
+
+  private static void addToJar(java.util.jar.JarOutputStream out, File directory, String prefix) throws IOException {
+    File[] children = directory.listFiles();
+    Arrays.sort(children);
+    for (File child:children) {
+      if (child.isDirectory()) {
+        addToJar(out, child, prefix+child.getName()+"/");
+        continue;
+      }
+      out.putNextEntry(new java.util.jar.JarEntry(prefix+child.getName()));
+      InputStream in = new BufferedInputStream(new FileInputStream(child));
+      byte[] buffer = new byte[8192];
+      int read = in.read(buffer);
+      while (read>=0) {
+        out.write(buffer, 0, read);
+        read = in.read(buffer);
+      }
+      in.close();
+      out.closeEntry();
+    }
+  }
+
+  /**
+   * Runs a prover on a small formula with the classes it loads being dumped
+   * to the archive when it exits. The prover runs with the same compressed
+   * oops setting as the provers that will use the archive.
+   */
+  private static boolean buildArchive(File archive, String jarClassPath, boolean compressedOops) {
+    Automaton warmup = new Automaton(2, "0101", "1");
+    warmup.walnutName = "LL_"+WARMUP_NAME;
+    File warmupFile = warmup.createWalnutAutomatonFile();
+    long heapMegabytes = MemoryBudget.MIN_HEAP_MEGABYTES;
+    boolean built = false;
+    try {
+      TestAdditiveBasis.memoryBudget.acquire(heapMegabytes);
+      try {
+        ProcessBuilder builder = new ProcessBuilder("java", "-Xmx"+heapMegabytes+"m",
+            compressedOops ? "-XX:+UseCompressedOops" : "-XX:-UseCompressedOops",
+            "-XX:ArchiveClassesAtExit="+archive.getPath(), "-cp", jarClassPath, "Main.prover");
+        builder.redirectOutput(Prover.DISCARD);
+        builder.redirectError(Prover.DISCARD);
+        Process p = builder.start();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(p.getOutputStream()));
+        writer.write("eval "+WARMUP_NAME+" \"A n ("+warmup.walnutName+"[n]=@1)=>(E t (n=2*t))\":\n");
+        writer.write("exit:");
+        writer.close();
+        if (!p.waitFor(10, TimeUnit.MINUTES)) {
+          p.destroyForcibly();
+          p.waitFor();
+        }
+        built = p.exitValue()==0 && archive.exists();
+      } finally {
+        TestAdditiveBasis.memoryBudget.release(heapMegabytes);
+      }
+    } catch (IOException | InterruptedException e) {
+      built = false;
+    }
+    Prover.deleteResultFiles(WARMUP_NAME, false);
+    warmupFile.delete();
+    return built;
+  }
+
+  /**
+   * Describes everything the jar and archive depend on: the version of the
+   * JVM that runs the provers, the classpath, and the files on it.
+   */
+  private static String getStamp() {
+    StringBuilder sb = new StringBuilder();
+    try {
+      ProcessBuilder builder = new ProcessBuilder("java", "-version");
+      builder.redirectErrorStream(true);
+      Process p = builder.start();
+      BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+      String line = reader.readLine();
+      while (line!=null) {
+        sb.append(line+"\n");
+        line = reader.readLine();
+      }
+      p.waitFor();
+    } catch (IOException | InterruptedException e) {
+      sb.append("unknown java\n");
+    }
+    sb.append(TestAdditiveBasis.proverClassPath+"\n");
+    long[] newestAndCount = new long[2];
+    for (String entry:TestAdditiveBasis.proverClassPath.split(File.pathSeparator)) {
+      scanClassPath(new File(entry), newestAndCount);
+    }
+    sb.append(newestAndCount[0]+" "+newestAndCount[1]+"\n");
+    return sb.toString();
+  }
+
+  private static void scanClassPath(File file, long[] newestAndCount) {
+    File[] children = file.listFiles();
+    if (children==null) {
+      if (file.exists()) {
+        newestAndCount[0] = Math.max(newestAndCount[0], file.lastModified());
+        newestAndCount[1]++;
+      }
+      return;
+    }
+    for (File child:children) {
+      scanClassPath(child, newestAndCount);
+    }
+  }
+
+  private static String readStamp(File stampFile) {
+    if (!stampFile.exists())
+      return null;
+    StringBuilder sb = new StringBuilder();
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(stampFile));
+      String line = reader.readLine();
+      while (line!=null) {
+        sb.append(line+"\n");
+        line = reader.readLine();
+      }
+      reader.close();
+    } catch (IOException e) {
+      return null;
+    }
+    return sb.toString();
+  }
+}
+class QueryService {
+  // Answers queries about single automata, given one per line in the format
+  // of the list files, for as long as the program runs. Answers are cached,
+  // provers are kept running between queries, and queries that arrive while
+  // others are being analysed are analysed together as one batch.
+  HashMap<String,AnalysisResult> cache = new HashMap<>();
+  LinkedBlockingQueue<Query> pending = new LinkedBlockingQueue<>();
+  Thread dispatcher;
+
+  static class Query {
+    String line;
+    Automaton aut;
+    AnalysisResult result;
+    String error;
+    CountDownLatch answered = new CountDownLatch(1);
+
+    Query(String line) {
+      this.line = line;
+    }
+  }
+
+  public QueryService() {
+    TestAdditiveBasis.calculateOrder = true;
+    TestAdditiveBasis.calculateNonAsymptotic = true;
+    Prover.pooling = true;
+    dispatcher = new Thread(this::dispatch);
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Answers each line of the input on the corresponding line of the output.
+   * Lines are queued as soon as they are read, so that a client may send
+   * many queries before reading any answers.
+   */
+  public void serveStream(BufferedReader in, PrintWriter out) throws IOException {
+    LinkedBlockingQueue<Query> unanswered = new LinkedBlockingQueue<>();
+    Query endOfInput = new Query(null);
+    Thread writer = new Thread(() -> {
+      try {
+        Query query = unanswered.take();
+        while (query!=endOfInput) {
+          query.answered.await();
+          out.println(describe(query));
+          query = unanswered.take();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    writer.start();
+    String line = in.readLine();
+    while (line!=null) {
+      if (line.trim().length()>0) {
+        unanswered.add(submit(line.trim()));
+      }
+      line = in.readLine();
+    }
+    unanswered.add(endOfInput);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Serves queries on a localhost port, one connection per client, until the
+   * program is stopped.
+   */
+  public void serveSocket(int port) throws IOException {
+    Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    System.err.println("Listening on localhost:"+server.getLocalPort());
+    while (true) {
+      Socket client = server.accept();
+      Thread connection = new Thread(() -> {
+        try {
+          BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+          PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream()), true);
+          serveStream(in, out);
+          client.close();
+        } catch (IOException e) {
+          System.err.println("Lost connection to client: "+e.getMessage());
+        }
+      });
+      connection.setDaemon(true);
+      connection.start();
+    }
+  }
+
+  public void shutdown() {
+    dispatcher.interrupt();
+    Prover.closeIdleProvers();
+  }
+
+  private Query submit(String line) {
+    Query query = new Query(line);
+    try {
+      String[] autInfo = line.split(" ");
+      if (autInfo.length!=3) {
+        throw new IllegalArgumentException("expected: states transitions acceptingStates");
+      }
+      int nStates = Integer.parseInt(autInfo[0]);
+      if (nStates<1) {
+        throw new IllegalArgumentException("there must be at least one state");
+      }
+      if (autInfo[1].length()!=2*nStates) {
+        throw new IllegalArgumentException("the alphabet must be binary");
+      }
+      for (int i=0; i<autInfo[1].length(); i++) {
+        int nextState = autInfo[1].charAt(i)-'0';
+        if (nextState<0 || nextState>=nStates) {
+          throw new IllegalArgumentException("transition to a state that does not exist: "+autInfo[1].charAt(i));
+        }
+      }
+      query.aut = new Automaton(nStates, autInfo[1], autInfo[2]);
+      if (autInfo[1].charAt(0)!='0') {
+        throw new IllegalArgumentException("the initial state must loop on 0");
+      }
+    } catch (RuntimeException e) {
+      query.error = (e.getMessage()==null) ? e.toString() : e.getMessage();
+      query.answered.countDown();
+      return query;
+    }
+    synchronized (cache) {
+      query.result = cache.get(query.aut.canonicalString);
+    }
+    if (query.result!=null) {
+      query.answered.countDown();
+    } else {
+      pending.add(query);
+    }
+    return query;
+  }
+
+  private void dispatch() {
+    while (true) {
+      ArrayList<Query> queries = new ArrayList<>();
+      try {
+        queries.add(pending.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      pending.drainTo(queries);
+      try {
+        answer(queries);
+      } catch (RuntimeException e) {
+        // The dispatcher must outlive a batch that fails, or every later
+        // query would wait for an answer forever.
+        e.printStackTrace();
+        String error = (e.getMessage()==null) ? e.toString() : e.getMessage();
+        for (Query query:queries) {
+          if (query.answered.getCount()>0) {
+            query.error = "analysis failed: "+error;
+            query.answered.countDown();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Analyses a batch of queries and answers each of them.
+   */
+  private void answer(ArrayList<Query> queries) {
+    // Queries for the same automaton in one batch are analysed once.
+    LinkedHashMap<String,ArrayList<Query>> queriesByAutomaton = new LinkedHashMap<>();
+    for (Query query:queries) {
+      String key = query.aut.canonicalString;
+      if (!queriesByAutomaton.containsKey(key)) {
+        queriesByAutomaton.put(key, new ArrayList<>());
+      }
+      queriesByAutomaton.get(key).add(query);
+    }
+    ArrayList<Automaton> batch = new ArrayList<>();
+    ArrayList<String> lines = new ArrayList<>();
+    for (ArrayList<Query> sameAutomaton:queriesByAutomaton.values()) {
+      batch.add(sameAutomaton.get(0).aut);
+      lines.add(sameAutomaton.get(0).line);
+    }
+    AutomatonBatch simulator = new AutomatonBatch(batch);
+    int[] heuristicGCDs = simulator.heuristicGCD(TestAdditiveBasis.HEURISTIC_GCD_MAX_WORD_LEN);
+    long[] acceptsOne = simulator.isAccepted("1");
+    AnalysisResult[] results = TestAdditiveBasis.analyseBatch(batch, lines, heuristicGCDs, acceptsOne);
+    int i = 0;
+    for (ArrayList<Query> sameAutomaton:queriesByAutomaton.values()) {
+      AnalysisResult result = results[i++];
+      if (result.error==null && result.gcd!=Automaton.UNKNOWN && result.asymptoticOrder!=Automaton.UNKNOWN && result.order!=Automaton.UNKNOWN) {
+        synchronized (cache) {
+          cache.put(sameAutomaton.get(0).aut.canonicalString, result);
+        }
+      }
+      for (Query query:sameAutomaton) {
+        query.result = result;
+        if (result.error!=null) {
+          query.error = "analysis failed: "+result.error;
+        }
+        query.answered.countDown();
+      }
+    }
+  }
+
+  /**
+   * Formats the answer to a query as tab separated fields: the query, then
+   * gcd, growth, asymptotic order and order. The orders are "none" when the
+   * set is not an asymptotic basis or not a basis respectively.
+   */
+  static String describe(Query query) {
+    if (query.error!=null) {
+      return query.line+"\terror="+query.error;
+    }
+    AnalysisResult result = query.result;
+    String gcd = (result.gcd==Automaton.UNKNOWN) ? "not determined" : ""+result.gcd;
+    String growth = result.polynomial ? "polynomial" : "exponential";
+    boolean asymptoticBasis = result.gcd==1 && !result.polynomial;
+    String asymptoticOrder = asymptoticBasis ? TestAdditiveBasis.getOrderString(result.asymptoticOrder) : "none";
+    String order = (asymptoticBasis && result.formsBasis) ? TestAdditiveBasis.getOrderString(result.order) : "none";
+    return query.line+"\tgcd="+gcd+"\tgrowth="+growth+"\tasymptotic order="+asymptoticOrder+"\torder="+order;
+  }
+}
+class PhaseTimer {
+  // Accumulates the time spent in each phase of the pipeline.
+  static final int HEURISTICS = 0;
+  static final int GCD = 1;
+  static final int GROWTH = 2;
+  static final int ASYMPTOTIC_ORDER = 3;
+  static final int ORDER = 4;
+  static final String[] PHASE_NAMES = {"heuristics", "gcd", "growth", "asymptotic order", "order"};
+  long[] nanos = new long[PHASE_NAMES.length];
+  int automata = 0;
+
+  public void add(int phase, long startNanos) {
+    nanos[phase] += System.nanoTime()-startNanos;
+  }
+
+  public void add(AnalysisResult result) {
+    for (int phase=0; phase<PHASE_NAMES.length; phase++) {
+      nanos[phase] += result.phaseNanos[phase];
+    }
+  }
+
+  public void report(PrintStream out, long elapsedNanos) {
+    double seconds = elapsedNanos/1e9;
+    out.printf("  %d automata in %.3f s (%.1f automata/s)%n", automata, seconds, automata/Math.max(seconds, 1e-9));
+    for (int phase=0; phase<PHASE_NAMES.length; phase++) {
+      out.printf("  %-17s %10.3f s%n", PHASE_NAMES[phase], nanos[phase]/1e9);
+    }
+  }
+}
+class AutomatonBatch {
+  // Simulates many automata over the binary alphabet on the same input at
+  // once. The automata are split into blocks of 64 lanes and the current
+  // states of a block are kept one-hot: occupancy[s] has bit j set exactly
+  // when automaton j of the block is in state s.
+  static final int LANES = 64;
+  int size;
+  int nBlocks;
+  int nStates;
+  long[][][][] transitionMask;
+  long[][] acceptMask;
+  long[][] initialOccupancy;
+
+  public AutomatonBatch(List<Automaton> automata) {
+    size = automata.size();
+    nBlocks = (size+LANES-1)/LANES;
+    for (Automaton aut:automata) {
+      if (aut.alphabetSize!=2) {
+        throw new IllegalArgumentException("Batch simulation needs a binary alphabet: "+aut.canonicalString);
+      }
+      nStates = Math.max(nStates, aut.nStates);
+    }
+    transitionMask = new long[nBlocks][2][nStates][nStates];
+    acceptMask = new long[nBlocks][nStates];
+    initialOccupancy = new long[nBlocks][nStates];
+    for (int i=0; i<size; i++) {
+      Automaton aut = automata.get(i);
+      int block = i/LANES;
+      long lane = 1L<<(i%LANES);
+      initialOccupancy[block][aut.initialState] |= lane;
+      for (int state=0; state<aut.nStates; state++) {
+        if (aut.accept[state])
+          acceptMask[block][state] |= lane;
+        for (int symbol=0; symbol<2; symbol++) {
+          transitionMask[block][symbol][state][aut.transition[state][symbol]] |= lane;
+        }
+      }
+    }
+  }
+
+  public static boolean isSet(long[] masks, int index) {
+    return (masks[index/LANES]&(1L<<(index%LANES)))!=0;
+  }
+
+  public long[] isAccepted(String word) {
+    long[] accepted = new long[nBlocks];
+    for (int block=0; block<nBlocks; block++) {
+      long[] occupancy = initialOccupancy[block];
+      for (int i=0; i<word.length(); i++) {
+        occupancy = step(block, occupancy, word.charAt(i)-'0');
+      }
+      accepted[block] = acceptedLanes(block, occupancy);
+    }
+    return accepted;
+  }
+
+  public int[] heuristicGCD(int certainty) {
+    int[] gcds = new int[size];
+    long[] settled = new long[nBlocks];
+    for (int block=0; block<nBlocks; block++) {
+      long[] occupancy = step(block, initialOccupancy[block], 1);
+      gcdDfs(block, occupancy, 1, 1, certainty, gcds, settled);
+    }
+    return gcds;
+  }
+
+  private void gcdDfs(int block, long[] occupancy, int value, int wordLength, int certainty, int[] gcds, long[] settled) {
+    long live = 0;
+    for (int state=0; state<nStates; state++) {
+      live |= occupancy[state];
+    }
+    // Lanes whose running GCD is already 1 cannot change any more.
+    if ((live&~settled[block])==0)
+      return;
+    long accepted = acceptedLanes(block, occupancy)&~settled[block];
+    while (accepted!=0) {
+      int lane = Long.numberOfTrailingZeros(accepted);
+      accepted &= accepted-1;
+      int index = block*LANES+lane;
+      gcds[index] = Automaton.gcd(value, gcds[index]);
+      if (gcds[index]==1)
+        settled[block] |= 1L<<lane;
+    }
+    if (wordLength==certainty)
+      return;
+    for (int symbol=0; symbol<2; symbol++) {
+      gcdDfs(block, step(block, occupancy, symbol), 2*value+symbol, wordLength+1, certainty, gcds, settled);
+    }
+  }
+
+  private long[] step(int block, long[] occupancy, int symbol) {
+    long[] next = new long[nStates];
+    long[][] symbolMask = transitionMask[block][symbol];
+    for (int state=0; state<nStates; state++) {
+      long lanes = occupancy[state];
+      if (lanes==0)
+        continue;
+      for (int nextState=0; nextState<nStates; nextState++) {
+        next[nextState] |= lanes&symbolMask[state][nextState];
+      }
+    }
+    return next;
+  }
+
+  private long acceptedLanes(int block, long[] occupancy) {
+    long accepted = 0;
+    for (int state=0; state<nStates; state++) {
+      accepted |= occupancy[state]&acceptMask[block][state];
+    }
+    return accepted;
+  }
+}
 class Tarjan {
   // Class for computing the Strongly Connected Components of a graph
   boolean[][] adj;